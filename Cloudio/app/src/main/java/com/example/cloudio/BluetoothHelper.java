@@ -5,6 +5,7 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
@@ -12,17 +13,25 @@ import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
 
 import java.util.UUID;
 
-public class BluetoothHelper {
+public class BluetoothHelper implements ChannelTransport {
 
     private static final UUID SERVICE_UUID = UUID.fromString("0000FFE0-0000-1000-8000-00805F9B34FB");
     private static final UUID CHAR_UUID = UUID.fromString("0000FFE1-0000-1000-8000-00805F9B34FB"); // Adjust this to match the characteristic UUID that you will write to.
+    private static final UUID CCCD_UUID = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB"); // Client Characteristic Configuration, enables notifications
     private static final String TAG = "com.example.cloudio.BluetoothHelper";
+    private static final long RESYNC_DELAY_MS = 300; // time the lamp gets to report its values before we resync
+    private static final int MAX_NOTIFICATION_ATTEMPTS = 3;
+
+    public interface OnChannelReportListener {
+        void onChannelReported(int channel, int value);
+    }
 
     private BluetoothAdapter mAdapter;
     private BluetoothDevice mDevice;
@@ -31,6 +40,18 @@ public class BluetoothHelper {
     private BluetoothGattCharacteristic mCharacteristic;
 
     private Context context;
+    private OnChannelReportListener reportListener;
+
+    private final WriteQueue queue = new WriteQueue();
+    private volatile boolean notificationsPending = false; // enabling notifications failed, retried on resync
+    private volatile int notificationAttempts = 0;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final PacketDecoder decoder = new PacketDecoder(new PacketDecoder.PacketListener() {
+        @Override
+        public void onPacket(int channel, int value) {
+            onChannelReported(channel, value);
+        }
+    });
 
     public BluetoothHelper(Context context) {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -85,23 +106,132 @@ public class BluetoothHelper {
         }
     }
 
+    public void setOnChannelReportListener(OnChannelReportListener listener) {
+        this.reportListener = listener;
+    }
+
+    @Override
+    public ChannelState getChannelState() {
+        return queue.getChannelState();
+    }
+
+    @Override
+    public TransportMetrics getMetrics() {
+        return queue.getMetrics();
+    }
+
+    @Override
     public void sendData(int channel, int value) {
+        queue.enqueue(channel, value);
+        writeNext();
+    }
+
+    /**
+     * Sets a run of consecutive channels in one go, e.g. when recalling a preset.
+     * All values are queued before the first write starts, so the writes go out back to back.
+     */
+    @Override
+    public void applyScene(int firstChannel, int[] values) {
+        queue.enqueueScene(firstChannel, values);
+        writeNext();
+    }
+
+    /**
+     * Sends every channel where the lamp is not known to have the desired value.
+     * Channels the lamp already reported or acknowledged are skipped.
+     */
+    public void resync() {
+        if (notificationsPending) {
+            BluetoothGatt gatt = mBluetoothGatt;
+            if (gatt != null && mCharacteristic != null && queue.beginDescriptorWrite()) {
+                notificationsPending = false;
+                enableNotifications(gatt);
+            } else {
+                scheduleResync(); // a write is in flight, try again later
+            }
+        }
+        queue.enqueueMismatches();
+        writeNext();
+    }
+
+    private void writeNext() {
         if (mBluetoothGatt == null || mCharacteristic == null) {
             return;
         }
-        mCharacteristic.setValue(buildMessage(channel, value));
+        // Checked before taking a write, so nothing is lost without the permission
         if (ActivityCompat.checkSelfPermission(this.context, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-            // TODO: Consider calling
-            //    ActivityCompat#requestPermissions
-            // here to request the missing permissions, and then overriding
-            //   public void onRequestPermissionsResult(int requestCode, String[] permissions,
-            //                                          int[] grantResults)
-            // to handle the case where the user grants the permission. See the documentation
-            // for ActivityCompat#requestPermissions for more details.
             return;
         }
-        mBluetoothGatt.writeCharacteristic(mCharacteristic);
+        int[] write = queue.next();
+        if (write == null) {
+            return;
+        }
+        mCharacteristic.setValue(buildMessage(write[0], write[1]));
+        if (!mBluetoothGatt.writeCharacteristic(mCharacteristic)) {
+            // The stack is busy, keep the value queued and try again a bit later
+            Log.w(TAG, "Write of channel " + write[0] + " could not be started");
+            queue.onWriteComplete(false);
+            scheduleResync();
+        }
+        // otherwise onCharacteristicWrite continues with the next one
     }
+
+    private void onChannelReported(int channel, int value) {
+        boolean changed = queue.onReported(channel, value);
+        if (changed && reportListener != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    reportListener.onChannelReported(channel, value);
+                }
+            });
+        }
+    }
+
+    // Must be called with the descriptor write reserved in the queue
+    private void enableNotifications(BluetoothGatt gatt) {
+        notificationAttempts++;
+        if (ActivityCompat.checkSelfPermission(context, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            onNotificationSetupFailed();
+            return;
+        }
+        gatt.setCharacteristicNotification(mCharacteristic, true);
+        BluetoothGattDescriptor descriptor = mCharacteristic.getDescriptor(CCCD_UUID);
+        if (descriptor == null) {
+            // No notifications on this module, fall back to resending what we have
+            queue.endDescriptorWrite();
+            scheduleResync();
+            return;
+        }
+        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        if (!gatt.writeDescriptor(descriptor)) {
+            onNotificationSetupFailed();
+        }
+    }
+
+    private void onNotificationSetupFailed() {
+        queue.endDescriptorWrite();
+        notificationsPending = notificationAttempts < MAX_NOTIFICATION_ATTEMPTS;
+        Log.w(TAG, "Could not enable notifications, attempt " + notificationAttempts);
+        scheduleResync();
+    }
+
+    private void scheduleResync() {
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                resync();
+            }
+        }, RESYNC_DELAY_MS);
+    }
+
+    private void onDisconnected() {
+        mCharacteristic = null;
+        notificationsPending = false;
+        queue.setConnected(false);
+        decoder.reset();
+    }
+
     public byte[] buildMessage(int channel, int value) {
         // Check the range
         if (channel < 0 || channel > 255 || value < 0 || value > 255) {
@@ -145,6 +275,7 @@ public class BluetoothHelper {
                 gatt.discoverServices();
             } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
                 Log.i(TAG, "Disconnected from GATT server.");
+                onDisconnected();
             }
         }
 
@@ -156,7 +287,43 @@ public class BluetoothHelper {
                     mCharacteristic = mService.getCharacteristic(CHAR_UUID);
                 }
             }
+            if (mCharacteristic != null) {
+                notificationAttempts = 0;
+                queue.connectWithDescriptorWrite();
+                enableNotifications(gatt);
+            }
             Log.i("service not null", "bla");
         }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                queue.endDescriptorWrite();
+                Log.i(TAG, "Notifications enabled");
+                scheduleResync();
+            } else {
+                onNotificationSetupFailed();
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                queue.onWriteComplete(true);
+                writeNext();
+            } else {
+                // The value stays queued, retry after a short pause instead of hammering the lamp
+                Log.w(TAG, "Write failed with status " + status);
+                queue.onWriteComplete(false);
+                scheduleResync();
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            if (CHAR_UUID.equals(characteristic.getUuid())) {
+                decoder.feed(characteristic.getValue());
+            }
+        }
     };
 }
@@ -0,0 +1,73 @@
+package com.example.cloudio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps track of the value we want on each channel and the value the lamp is known to have.
+ * The lamp value is either reported back through a notification or confirmed by a successful write.
+ * A channel only has to be sent when the two differ, so resyncs only send the actual diff.
+ */
+public class ChannelState {
+    public static final int CHANNEL_COUNT = 256;
+    public static final int UNKNOWN = -1;
+
+    private final int[] desired = new int[CHANNEL_COUNT];
+    private final int[] lamp = new int[CHANNEL_COUNT];
+
+    public ChannelState() {
+        Arrays.fill(desired, UNKNOWN);
+        Arrays.fill(lamp, UNKNOWN);
+    }
+
+    /**
+     * Sets the value we want on a channel.
+     * Returns true if the lamp is not known to have this value yet and it has to be sent.
+     */
+    public synchronized boolean setDesired(int channel, int value) {
+        desired[channel] = value;
+        return lamp[channel] != value;
+    }
+
+    /**
+     * Stores a value reported by the lamp. The lamp is the source of truth here (e.g. after a
+     * press-and-hold mode switch on the lamp), so the desired value follows it.
+     * Returns true if the reported value differs from what we had locally.
+     */
+    public synchronized boolean onReported(int channel, int value) {
+        boolean changed = desired[channel] != value;
+        lamp[channel] = value;
+        desired[channel] = value;
+        return changed;
+    }
+
+    /** Called when a write went through, the lamp now has this value. */
+    public synchronized void onWritten(int channel, int value) {
+        lamp[channel] = value;
+    }
+
+    /** Forget everything we know about the lamp, e.g. after a disconnect. */
+    public synchronized void invalidateLamp() {
+        Arrays.fill(lamp, UNKNOWN);
+    }
+
+    public synchronized int getDesired(int channel) {
+        return desired[channel];
+    }
+
+    public synchronized int getLamp(int channel) {
+        return lamp[channel];
+    }
+
+    /** Returns the channels where the desired value is set but the lamp does not have it. */
+    public synchronized List<Integer> getMismatches() {
+        List<Integer> mismatches = new ArrayList<>();
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if (desired[i] != UNKNOWN && desired[i] != lamp[i]) {
+                mismatches.add(i);
+            }
+        }
+        return mismatches;
+    }
+}
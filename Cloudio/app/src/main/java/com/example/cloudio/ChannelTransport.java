@@ -0,0 +1,16 @@
+package com.example.cloudio;
+
+/**
+ * Something that can push channel values to a lamp. Implemented by {@link BluetoothHelper},
+ * used by the {@link ControlServer} so it can also run against a fake lamp on localhost.
+ */
+public interface ChannelTransport {
+    void sendData(int channel, int value);
+
+    /** Sets the channels firstChannel, firstChannel + 1, ... to the given values as one batch. */
+    void applyScene(int firstChannel, int[] values);
+
+    ChannelState getChannelState();
+
+    TransportMetrics getMetrics();
+}
@@ -0,0 +1,87 @@
+package com.example.cloudio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary frames accepted by the {@link ControlServer}. Every byte is unsigned (0-255).
+ * <pre>
+ * SET   (0x01): 0x01, channel, value, channel, value, ...     any number of pairs
+ * SCENE (0x02): 0x02, firstChannel, value, value, ...         consecutive channels from firstChannel
+ * PING  (0x7F): 0x7F, payload...                              echoed back once everything before it was applied
+ * </pre>
+ */
+public class ControlProtocol {
+    public static final byte OP_SET = 0x01;
+    public static final byte OP_SCENE = 0x02;
+    public static final byte OP_PING = 0x7F;
+
+    /**
+     * Applies a SET or SCENE frame to the transport and returns the number of channel updates in it.
+     */
+    public static int apply(ByteBuffer frame, ChannelTransport transport) {
+        if (!frame.hasRemaining()) {
+            throw new IllegalArgumentException("Empty frame");
+        }
+        byte op = frame.get();
+        int updates = 0;
+        if (op == OP_SET) {
+            if (frame.remaining() % 2 != 0) {
+                throw new IllegalArgumentException("SET frame must contain channel/value pairs");
+            }
+            while (frame.hasRemaining()) {
+                transport.sendData(frame.get() & 0xFF, frame.get() & 0xFF);
+                updates++;
+            }
+        } else if (op == OP_SCENE) {
+            if (!frame.hasRemaining()) {
+                throw new IllegalArgumentException("SCENE frame is missing the first channel");
+            }
+            int channel = frame.get() & 0xFF;
+            if (channel + frame.remaining() > ChannelState.CHANNEL_COUNT) {
+                throw new IllegalArgumentException("SCENE frame runs past channel 255");
+            }
+            int[] values = new int[frame.remaining()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = frame.get() & 0xFF;
+            }
+            transport.applyScene(channel, values);
+            updates = values.length;
+        } else {
+            throw new IllegalArgumentException("Unknown op " + (op & 0xFF));
+        }
+        return updates;
+    }
+
+    public static byte[] buildSet(int[] channels, int[] values) {
+        if (channels.length != values.length) {
+            throw new IllegalArgumentException("'channels' and 'values' must have the same length.");
+        }
+        byte[] frame = new byte[1 + channels.length * 2];
+        frame[0] = OP_SET;
+        for (int i = 0; i < channels.length; i++) {
+            frame[1 + i * 2] = toByte(channels[i]);
+            frame[2 + i * 2] = toByte(values[i]);
+        }
+        return frame;
+    }
+
+    public static byte[] buildScene(int firstChannel, int[] values) {
+        if (firstChannel + values.length > ChannelState.CHANNEL_COUNT) {
+            throw new IllegalArgumentException("Scene runs past channel 255.");
+        }
+        byte[] frame = new byte[2 + values.length];
+        frame[0] = OP_SCENE;
+        frame[1] = toByte(firstChannel);
+        for (int i = 0; i < values.length; i++) {
+            frame[2 + i] = toByte(values[i]);
+        }
+        return frame;
+    }
+
+    private static byte toByte(int value) {
+        if (value < 0 || value > 255) {
+            throw new IllegalArgumentException("Channels and values must be between 0 and 255.");
+        }
+        return (byte) value;
+    }
+}
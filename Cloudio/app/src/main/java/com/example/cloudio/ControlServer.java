@@ -0,0 +1,278 @@
+package com.example.cloudio;
+
+import android.util.Log;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
+import org.java_websocket.server.WebSocketServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small WebSocket server that lets show-control software on the same network drive the lamp
+ * through this phone. Binary frames are described in {@link ControlProtocol}, text frames are JSON:
+ * <pre>
+ * {"set": {"1": 50, "7": 250}}       set single channels
+ * {"scene": [0, 50, 50], "start": 1} set consecutive channels, start defaults to 1
+ * {"get": "state"}                   desired and lamp reported values of all known channels
+ * {"get": "metrics"}                 server and transport counters
+ * {"ping": anything}                 answered with {"pong": anything}
+ * </pre>
+ * Updates are handed straight to the transport, which coalesces them per channel while a write is in flight.
+ * Clients have to send the shared token, either as "Authorization: Bearer &lt;token&gt;" header or as
+ * "?token=&lt;token&gt;" in the URL (browsers cannot set headers on WebSockets).
+ */
+public class ControlServer extends WebSocketServer {
+    public static final int DEFAULT_PORT = 8765;
+    private static final int DECODER_THREADS = 2;
+    private static final String TAG = "com.example.cloudio.ControlServer";
+
+    /**
+     * Called on a server thread after a frame changed channel values. Frames can arrive much faster
+     * than the UI can redraw, so listeners should coalesce and read the values from the {@link ChannelState}.
+     */
+    public interface OnRemoteUpdateListener {
+        void onRemoteUpdate();
+    }
+
+    private final ChannelTransport transport;
+    private final String token;
+    private volatile OnRemoteUpdateListener updateListener;
+    private volatile OnServerFailedListener failedListener;
+
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private long lastRateTime = System.nanoTime();
+    private long lastRateUpdates = 0;
+
+    public ControlServer(int port, ChannelTransport transport, String token) {
+        super(new InetSocketAddress(port), DECODER_THREADS);
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("A token is required.");
+        }
+        this.transport = transport;
+        this.token = token;
+        setReuseAddr(true);
+        setTcpNoDelay(true); // frames and pongs are tiny, Nagle would hold them back
+    }
+
+    /** Called on a server thread when the server itself failed (e.g. the port is taken) and stopped. */
+    public interface OnServerFailedListener {
+        void onServerFailed(Exception ex);
+    }
+
+    public void setOnRemoteUpdateListener(OnRemoteUpdateListener listener) {
+        this.updateListener = listener;
+    }
+
+    public void setOnServerFailedListener(OnServerFailedListener listener) {
+        this.failedListener = listener;
+    }
+
+    @Override
+    public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(WebSocket conn, Draft draft, ClientHandshake request) throws InvalidDataException {
+        if (!isAuthorized(request)) {
+            throw new InvalidDataException(CloseFrame.POLICY_VALIDATION, "Missing or wrong token");
+        }
+        return super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
+    }
+
+    private boolean isAuthorized(ClientHandshake request) {
+        String given = null;
+        String header = request.getFieldValue("Authorization");
+        if (header.startsWith("Bearer ")) {
+            given = header.substring("Bearer ".length()).trim();
+        } else {
+            String resource = request.getResourceDescriptor();
+            int query = resource.indexOf('?');
+            if (query >= 0) {
+                for (String param : resource.substring(query + 1).split("&")) {
+                    if (param.startsWith("token=")) {
+                        given = param.substring("token=".length());
+                    }
+                }
+            }
+        }
+        // constant time compare, so the token cannot be guessed byte by byte
+        return given != null && MessageDigest.isEqual(
+                given.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        Log.i(TAG, "Control client connected: " + conn.getRemoteSocketAddress());
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        Log.i(TAG, "Control client disconnected: " + conn.getRemoteSocketAddress());
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        frames.incrementAndGet();
+        try {
+            if (message.hasRemaining() && message.get(message.position()) == ControlProtocol.OP_PING) {
+                // Everything received before the ping on this connection has been applied already
+                conn.send(message);
+                return;
+            }
+            updates.addAndGet(ControlProtocol.apply(message, transport));
+            notifyUpdated();
+        } catch (IllegalArgumentException e) {
+            errors.incrementAndGet();
+            conn.send("{\"error\":" + JSONObject.quote(e.getMessage()) + "}");
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        frames.incrementAndGet();
+        try {
+            JSONObject request = new JSONObject(message);
+            // Parse and check everything first, so a bad entry rejects the whole message
+            int[] setChannels = new int[0];
+            int[] setValues = new int[0];
+            if (request.has("set")) {
+                JSONObject set = request.getJSONObject("set");
+                setChannels = new int[set.length()];
+                setValues = new int[set.length()];
+                Iterator<String> keys = set.keys();
+                for (int i = 0; keys.hasNext(); i++) {
+                    String key = keys.next();
+                    setChannels[i] = Integer.parseInt(key);
+                    setValues[i] = set.getInt(key);
+                    checkRange(setChannels[i], setValues[i]);
+                }
+            }
+            int start = request.optInt("start", 1);
+            int[] scene = new int[0];
+            if (request.has("scene")) {
+                JSONArray sceneJson = request.getJSONArray("scene");
+                scene = new int[sceneJson.length()];
+                for (int i = 0; i < scene.length; i++) {
+                    scene[i] = sceneJson.getInt(i);
+                    checkRange(start + i, scene[i]);
+                }
+            }
+
+            for (int i = 0; i < setChannels.length; i++) {
+                transport.sendData(setChannels[i], setValues[i]);
+            }
+            if (scene.length > 0) {
+                transport.applyScene(start, scene);
+            }
+            if (setChannels.length + scene.length > 0) {
+                updates.addAndGet(setChannels.length + scene.length);
+                notifyUpdated();
+            }
+            if (request.has("ping")) {
+                conn.send(new JSONObject().put("pong", request.get("ping")).toString());
+            }
+            String get = request.optString("get", "");
+            if (get.equals("state")) {
+                conn.send(new JSONObject().put("state", stateToJson()).toString());
+            } else if (get.equals("metrics")) {
+                conn.send(new JSONObject().put("metrics", metricsToJson()).toString());
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            errors.incrementAndGet();
+            conn.send("{\"error\":" + JSONObject.quote(String.valueOf(e.getMessage())) + "}");
+        }
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        errors.incrementAndGet();
+        if (conn != null) {
+            Log.w(TAG, "Control client error", ex);
+            return;
+        }
+        // Without a connection the error is about the server itself, it is not running anymore
+        Log.e(TAG, "Control server failed", ex);
+        OnServerFailedListener listener = failedListener;
+        if (listener != null) {
+            listener.onServerFailed(ex);
+        }
+    }
+
+    @Override
+    public void onStart() {
+        Log.i(TAG, "Control server listening on port " + getPort());
+    }
+
+    public long getFrameCount() {
+        return frames.get();
+    }
+
+    public long getUpdateCount() {
+        return updates.get();
+    }
+
+    private void notifyUpdated() {
+        OnRemoteUpdateListener listener = updateListener;
+        if (listener != null) {
+            listener.onRemoteUpdate();
+        }
+    }
+
+    private static void checkRange(int channel, int value) {
+        if (channel < 0 || channel > 255 || value < 0 || value > 255) {
+            throw new IllegalArgumentException("Both 'channel' and 'value' must be between 0 and 255.");
+        }
+    }
+
+    private JSONObject stateToJson() throws JSONException {
+        ChannelState state = transport.getChannelState();
+        JSONObject desired = new JSONObject();
+        JSONObject lamp = new JSONObject();
+        for (int i = 0; i < ChannelState.CHANNEL_COUNT; i++) {
+            if (state.getDesired(i) != ChannelState.UNKNOWN) {
+                desired.put(String.valueOf(i), state.getDesired(i));
+            }
+            if (state.getLamp(i) != ChannelState.UNKNOWN) {
+                lamp.put(String.valueOf(i), state.getLamp(i));
+            }
+        }
+        return new JSONObject().put("desired", desired).put("lamp", lamp);
+    }
+
+    private synchronized JSONObject metricsToJson() throws JSONException {
+        // updates per second since the last metrics request
+        long now = System.nanoTime();
+        long total = updates.get();
+        double seconds = (now - lastRateTime) / 1e9;
+        double rate = seconds > 0 ? (total - lastRateUpdates) / seconds : 0;
+        lastRateTime = now;
+        lastRateUpdates = total;
+
+        TransportMetrics t = transport.getMetrics();
+        JSONObject transportJson = new JSONObject()
+                .put("requested", t.requested.get())
+                .put("skipped", t.skipped.get())
+                .put("coalesced", t.coalesced.get())
+                .put("written", t.written.get())
+                .put("failed", t.failed.get())
+                .put("reported", t.reported.get());
+        return new JSONObject()
+                .put("clients", getConnections().size())
+                .put("frames", frames.get())
+                .put("updates", total)
+                .put("errors", errors.get())
+                .put("updatesPerSecond", rate)
+                .put("transport", transportJson);
+    }
+}
@@ -1,35 +1,64 @@
 package com.example.cloudio;
 
 import android.bluetooth.BluetoothDevice;
+import android.content.DialogInterface;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CompoundButton;
 import android.widget.EditText;
 import android.widget.HorizontalScrollView;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.ScrollView;
 import android.widget.SeekBar;
+import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultCallback;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends AppCompatActivity implements DeviceListDialogFragment.DeviceListDialogListener {
     private int numSliders = 10; // Number of sliders
     private BluetoothHelper bt = new BluetoothHelper(this);
     private SeekBar[] seekBars = new SeekBar[numSliders];
+    private ControlServer controlServer;
+    private SharedPreferences prefs;
+    private Switch remoteSwitch;
+    private static final int SERVER_STOP_TIMEOUT_MS = 1000;
+    private PresetLibrary presets;
+    private LinearLayout presetLayout;
+    private EditText presetSearch;
+    private int buttonHeight;
+    private boolean applyingScene = false; // sliders are being moved to values that were already sent
+    private final AtomicBoolean sliderRefreshPosted = new AtomicBoolean(false);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -103,6 +132,24 @@ public class MainActivity extends AppCompatActivity implements DeviceListDialogF
 
         parentLayout.addView(button);
 
+        // Local control API for show-control software on the same network, off unless enabled here
+        prefs = getSharedPreferences("cloudio", MODE_PRIVATE);
+        remoteSwitch = new Switch(this);
+        remoteSwitch.setText("Remote control (port " + ControlServer.DEFAULT_PORT + ", token " + getRemoteToken() + ")");
+        remoteSwitch.setChecked(prefs.getBoolean("remote_enabled", false));
+        remoteSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                prefs.edit().putBoolean("remote_enabled", isChecked).apply();
+                if (isChecked) {
+                    startControlServer();
+                } else {
+                    stopControlServer();
+                }
+            }
+        });
+        parentLayout.addView(remoteSwitch);
+
         // Create Flash button
         Button flbtn = new Button(this);
         // Calculate 10% of screen height
@@ -144,32 +191,48 @@ public class MainActivity extends AppCompatActivity implements DeviceListDialogF
                 ViewGroup.LayoutParams.WRAP_CONTENT, height));
         buttonLayout.setOrientation(LinearLayout.HORIZONTAL);
 
-        // Create buttons with icons
-        String[] btns = new String[]{"Off", "Lamp", "Thunderstorm", "Party"};
-        int[][] values = new int[][]{
-                {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
-                {50, 0, 0, 0, 0, 0, 0, 0, 0, 0},
-                {0, 50, 50, 255, 150, 255, 255, 0, 0, 0},
-                {0, 200, 150, 200, 0, 0, 0, 0, 0, 0}
-        };
+        buttonHeight = height;
+        presetLayout = buttonLayout;
 
-        for (int i = 0; i < 4; i++) {
-            final int index = i;  // Save the current index
-            Button btn = new Button(this);
-            btn.setLayoutParams(new LinearLayout.LayoutParams(
-                    LinearLayout.LayoutParams.WRAP_CONTENT,
-                    height));
-            btn.setText(btns[i]); // Set the text for each
-            btn.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                for (int j = 0; j < numSliders; j++) {
-                    seekBars[j].setProgress(values[index][j]);
-                }            }
-            });
-            buttonLayout.addView(btn);
+        // Preset library, seeded with the built-in looks on first start
+        presets = new PresetLibrary(new File(getFilesDir(), "presets.bin"), numSliders, 32);
+        try {
+            presets.open();
+            if (presets.size() == 0) {
+                presets.putAll(defaultPresets());
+            }
+        } catch (IOException e) {
+            Log.e("MainActivity", "Could not load presets", e);
+            Toast.makeText(this, "Could not load presets: " + e.getMessage(), Toast.LENGTH_LONG).show();
         }
 
+        // Search presets by name or tag
+        presetSearch = new EditText(this);
+        presetSearch.setLayoutParams(new LinearLayout.LayoutParams(
+                LinearLayout.LayoutParams.MATCH_PARENT,
+                LinearLayout.LayoutParams.WRAP_CONTENT));
+        presetSearch.setSingleLine(true);
+        presetSearch.setHint("Search presets");
+        presetSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                // Do nothing
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                showPresets();
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                // Do nothing
+            }
+        });
+        parentLayout.addView(presetSearch);
+        parentLayout.addView(createPresetToolbar());
+        showPresets();
+
         // Add LinearLayout to HorizontalScrollView
         horizontalScrollView.addView(buttonLayout);
 
@@ -249,11 +312,287 @@ public class MainActivity extends AppCompatActivity implements DeviceListDialogF
 
         // Set parent LinearLayout as our content view
         setContentView(parentLayout);
+
+        // Let the sliders follow values reported back by the lamp
+        bt.setOnChannelReportListener(new BluetoothHelper.OnChannelReportListener() {
+            @Override
+            public void onChannelReported(int channel, int value) {
+                if (channel >= 1 && channel <= numSliders) {
+                    // The value came from the lamp, do not send it back
+                    applyingScene = true;
+                    seekBars[channel - 1].setProgress(value);
+                    applyingScene = false;
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (prefs.getBoolean("remote_enabled", false)) {
+            startControlServer();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        stopControlServer();
+    }
+
+    private void startControlServer() {
+        if (controlServer != null) {
+            return;
+        }
+        // A stopped WebSocketServer cannot be started again, so every start gets a new one
+        final ControlServer server = new ControlServer(ControlServer.DEFAULT_PORT, bt, getRemoteToken());
+        controlServer = server;
+        controlServer.setOnServerFailedListener(new ControlServer.OnServerFailedListener() {
+            @Override
+            public void onServerFailed(final Exception ex) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (controlServer != server) {
+                            return; // already stopped or replaced
+                        }
+                        controlServer = null;
+                        remoteSwitch.setChecked(false);
+                        Toast.makeText(MainActivity.this, "Remote control stopped: " + ex.getMessage(), Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+        controlServer.setOnRemoteUpdateListener(new ControlServer.OnRemoteUpdateListener() {
+            @Override
+            public void onRemoteUpdate() {
+                // At most one refresh waits on the UI thread, however many frames come in
+                if (sliderRefreshPosted.compareAndSet(false, true)) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            sliderRefreshPosted.set(false);
+                            refreshSliders();
+                        }
+                    });
+                }
+            }
+        });
+        controlServer.start();
+    }
+
+    private void stopControlServer() {
+        if (controlServer == null) {
+            return;
+        }
+        try {
+            // Bounded, this runs on the UI thread
+            controlServer.stop(SERVER_STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        controlServer = null;
+    }
+
+    // Random token clients have to send, created on first use and kept across restarts
+    private String getRemoteToken() {
+        String token = prefs.getString("remote_token", null);
+        if (token == null) {
+            byte[] bytes = new byte[6];
+            new SecureRandom().nextBytes(bytes);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : bytes) {
+                sb.append(String.format("%02x", b));
+            }
+            token = sb.toString();
+            prefs.edit().putString("remote_token", token).apply();
+        }
+        return token;
+    }
+
+    private List<Preset> defaultPresets() {
+        return Arrays.asList(
+                new Preset("Off", null, new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0}),
+                new Preset("Lamp", null, new int[]{50, 0, 0, 0, 0, 0, 0, 0, 0, 0}),
+                new Preset("Thunderstorm", Arrays.asList("storm", "flash"), new int[]{0, 50, 50, 255, 150, 255, 255, 0, 0, 0}),
+                new Preset("Party", Arrays.asList("twinkle"), new int[]{0, 200, 150, 200, 0, 0, 0, 0, 0, 0})
+        );
+    }
+
+    // Rebuilds the preset buttons for the current search text
+    private void showPresets() {
+        presetLayout.removeAllViews();
+        for (final String name : presets.search(presetSearch.getText().toString())) {
+            Button btn = new Button(this);
+            btn.setLayoutParams(new LinearLayout.LayoutParams(
+                    LinearLayout.LayoutParams.WRAP_CONTENT,
+                    buttonHeight));
+            btn.setText(name);
+            btn.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    recallPreset(name);
+                }
+            });
+            presetLayout.addView(btn);
+        }
+    }
+
+    private void recallPreset(String name) {
+        int[] values = presets.recall(name);
+        if (values == null) {
+            return;
+        }
+        // Send the whole scene as one batch, then let the sliders catch up without sending again
+        bt.applyScene(1, values);
+        applyingScene = true;
+        for (int j = 0; j < numSliders; j++) {
+            seekBars[j].setProgress(values[j]);
+        }
+        applyingScene = false;
+    }
+
+    // Moves the sliders to the values set through the control server, without sending them again
+    private void refreshSliders() {
+        ChannelState state = bt.getChannelState();
+        applyingScene = true;
+        for (int j = 0; j < numSliders; j++) {
+            int value = state.getDesired(j + 1);
+            if (value != ChannelState.UNKNOWN) {
+                seekBars[j].setProgress(value);
+            }
+        }
+        applyingScene = false;
+    }
+
+    // Save, Import and Export buttons for the preset library
+    private LinearLayout createPresetToolbar() {
+        final ActivityResultLauncher<String[]> importLauncher = registerForActivityResult(
+                new ActivityResultContracts.OpenDocument(), new ActivityResultCallback<Uri>() {
+                    @Override
+                    public void onActivityResult(Uri uri) {
+                        if (uri != null) {
+                            importPresets(uri);
+                        }
+                    }
+                });
+        final ActivityResultLauncher<String> exportLauncher = registerForActivityResult(
+                new ActivityResultContracts.CreateDocument("application/octet-stream"), new ActivityResultCallback<Uri>() {
+                    @Override
+                    public void onActivityResult(Uri uri) {
+                        if (uri != null) {
+                            exportPresets(uri);
+                        }
+                    }
+                });
+
+        LinearLayout toolbar = new LinearLayout(this);
+        toolbar.setOrientation(LinearLayout.HORIZONTAL);
+        LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1);
+
+        Button save = new Button(this);
+        save.setText("Save");
+        save.setLayoutParams(params);
+        save.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showSavePresetDialog();
+            }
+        });
+        toolbar.addView(save);
+
+        Button importBtn = new Button(this);
+        importBtn.setText("Import");
+        importBtn.setLayoutParams(params);
+        importBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                importLauncher.launch(new String[]{"*/*"});
+            }
+        });
+        toolbar.addView(importBtn);
+
+        Button exportBtn = new Button(this);
+        exportBtn.setText("Export");
+        exportBtn.setLayoutParams(params);
+        exportBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                exportLauncher.launch("presets.bin");
+            }
+        });
+        toolbar.addView(exportBtn);
+        return toolbar;
+    }
+
+    // Asks for "name, tag, tag" and stores the current slider values under that name
+    private void showSavePresetDialog() {
+        final EditText input = new EditText(this);
+        input.setSingleLine(true);
+        input.setHint("Name, tag, tag");
+        new AlertDialog.Builder(this)
+                .setTitle("Save Preset")
+                .setView(input)
+                .setPositiveButton("Save", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String[] parts = input.getText().toString().split(",");
+                        String name = parts[0].trim();
+                        if (name.isEmpty()) {
+                            return;
+                        }
+                        List<String> tags = new ArrayList<>();
+                        for (int i = 1; i < parts.length; i++) {
+                            if (!parts[i].trim().isEmpty()) {
+                                tags.add(parts[i].trim());
+                            }
+                        }
+                        int[] values = new int[numSliders];
+                        for (int j = 0; j < numSliders; j++) {
+                            values[j] = seekBars[j].getProgress();
+                        }
+                        try {
+                            presets.put(new Preset(name, tags, values));
+                        } catch (IOException | IllegalArgumentException e) {
+                            Toast.makeText(MainActivity.this, "Could not save preset: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                        }
+                        showPresets();
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void importPresets(Uri uri) {
+        try (InputStream in = getContentResolver().openInputStream(uri)) {
+            if (in == null) {
+                throw new IOException("Could not open " + uri);
+            }
+            int count = presets.importFrom(in);
+            Toast.makeText(this, "Imported " + count + " presets", Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Toast.makeText(this, "Could not import presets: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        }
+        showPresets();
+    }
+
+    private void exportPresets(Uri uri) {
+        try (OutputStream out = getContentResolver().openOutputStream(uri)) {
+            if (out == null) {
+                throw new IOException("Could not open " + uri);
+            }
+            presets.exportTo(out);
+        } catch (IOException e) {
+            Toast.makeText(this, "Could not export presets: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        }
     }
 
     private void onSliderChanged(int index, int value) {
         // Handle slider change here
-        bt.sendData(index, value);
+        if (!applyingScene) {
+            bt.sendData(index, value);
+        }
         System.out.println("Slider " + index + " changed to value: " + value);
     }
 
@@ -0,0 +1,51 @@
+package com.example.cloudio;
+
+/**
+ * Decodes channel/value packets that the lamp sends back on the FFE1 characteristic.
+ * Uses the same 5 byte format as {@link BluetoothHelper#buildMessage(int, int)}:
+ * a start byte with the MSB set, followed by two channel bytes and two value bytes.
+ * Notifications may split or join packets, so bytes are buffered across calls to {@link #feed(byte[])}.
+ */
+public class PacketDecoder {
+
+    public interface PacketListener {
+        void onPacket(int channel, int value);
+    }
+
+    private final PacketListener listener;
+    private final int[] buffer = new int[5];
+    private int bufferIndex = -1; // -1 means we are waiting for a start byte
+
+    public PacketDecoder(PacketListener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(byte[] data) {
+        if (data == null) {
+            return;
+        }
+        for (byte b : data) {
+            int incoming = b & 0xFF;
+            // A high MSB always starts a new packet, even if the last one was incomplete
+            if (incoming > 127) {
+                bufferIndex = 0;
+            } else if (bufferIndex < 0) {
+                continue; // data byte without a start byte, skip until the next packet
+            }
+            buffer[bufferIndex++] = incoming;
+
+            if (bufferIndex >= 5) {
+                int channel = buffer[1] + buffer[2];
+                int value = buffer[3] + buffer[4];
+                bufferIndex = -1;
+                if (channel <= 255 && value <= 255) {
+                    listener.onPacket(channel, value);
+                }
+            }
+        }
+    }
+
+    public void reset() {
+        bufferIndex = -1;
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.cloudio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A named set of channel values, starting at channel 1.
+ */
+public class Preset {
+    public final String name;
+    public final List<String> tags;
+    public final int[] values;
+
+    public Preset(String name, List<String> tags, int[] values) {
+        this.name = name;
+        this.tags = tags != null ? tags : new ArrayList<String>();
+        this.values = values;
+    }
+}
@@ -0,0 +1,380 @@
+package com.example.cloudio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Preset library stored in one compact binary file.
+ * Only the name index is parsed when the library is opened, the channel values are read
+ * from a memory mapped file on recall and the most recently used ones are cached.
+ * <pre>
+ * Header (16 bytes): magic "CLPL", version, width, 2 reserved bytes, preset count, index offset
+ * Data:              count * width bytes, one unsigned byte per channel
+ * Index:             per preset: name length + UTF-8 name, tag count, per tag: length + UTF-8 tag
+ * </pre>
+ * The same file is used for import and export, so venues can share libraries.
+ */
+public class PresetLibrary {
+    private static final int MAGIC = 0x434C504C; // "CLPL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static class Entry {
+        final String name;
+        final List<String> tags;
+        final int slot;
+
+        Entry(String name, List<String> tags, int slot) {
+            this.name = name;
+            this.tags = tags;
+            this.slot = slot;
+        }
+    }
+
+    private final File file;
+    private final int width;
+    private final Map<String, int[]> cache;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, Entry> byName = new HashMap<>();
+    private MappedByteBuffer data;
+    private int fileWidth;
+    private boolean readOnly = false; // the file could not be read or moved aside, saving would lose it
+
+    public PresetLibrary(File file, int width, final int cacheSize) {
+        this.file = file;
+        this.width = width;
+        this.cache = new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Reads the name index. A missing file is an empty library.
+     * A file that cannot be parsed is moved to "&lt;name&gt;.corrupt" so saving does not overwrite it,
+     * if that fails the library stays read only.
+     */
+    public synchronized void open() throws IOException {
+        entries.clear();
+        byName.clear();
+        cache.clear();
+        data = null;
+        readOnly = false;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            readIndex();
+        } catch (IOException e) {
+            entries.clear();
+            byName.clear();
+            File corrupt = new File(file.getPath() + ".corrupt");
+            if (!file.renameTo(corrupt)) {
+                readOnly = true;
+                throw new IOException(e.getMessage() + ", could not move it aside", e);
+            }
+            throw new IOException(e.getMessage() + ", moved to " + corrupt.getName(), e);
+        }
+    }
+
+    private void readIndex() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid after the file is closed
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            int count = readHeader(map);
+            fileWidth = map.get(5) & 0xFF;
+            for (int slot = 0; slot < count; slot++) {
+                String name = readString(map);
+                Entry entry = new Entry(name, readTags(map), slot);
+                entries.add(entry);
+                byName.put(name, entry);
+            }
+            data = map;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt preset library", e);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Number of scenes currently held in the recall cache. */
+    public synchronized int getCachedCount() {
+        return cache.size();
+    }
+
+    public synchronized List<String> getNames() {
+        List<String> names = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+
+    public synchronized List<String> getTags(String name) {
+        Entry entry = byName.get(name);
+        return entry != null ? new ArrayList<>(entry.tags) : null;
+    }
+
+    /**
+     * Returns the names of all presets whose name contains the query or that have a tag equal to it,
+     * ignoring case. An empty query returns everything.
+     */
+    public synchronized List<String> search(String query) {
+        String q = query.trim().toLowerCase(Locale.ROOT);
+        List<String> result = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (q.isEmpty() || entry.name.toLowerCase(Locale.ROOT).contains(q) || hasTag(entry, q)) {
+                result.add(entry.name);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the channel values of a preset, or null if there is none with this name. */
+    public synchronized int[] recall(String name) {
+        int[] values = cache.get(name);
+        if (values != null) {
+            return values.clone();
+        }
+        Entry entry = byName.get(name);
+        if (entry == null) {
+            return null;
+        }
+        values = readValues(entry);
+        cache.put(name, values);
+        return values.clone();
+    }
+
+    private int[] readValues(Entry entry) {
+        int[] values = new int[width];
+        int offset = HEADER_SIZE + entry.slot * fileWidth;
+        for (int i = 0; i < Math.min(width, fileWidth); i++) {
+            values[i] = data.get(offset + i) & 0xFF;
+        }
+        return values;
+    }
+
+    /** Adds a preset or replaces the one with the same name, and saves the library. */
+    public synchronized void put(Preset preset) throws IOException {
+        List<Preset> presets = new ArrayList<>();
+        presets.add(preset);
+        putAll(presets);
+    }
+
+    public synchronized void remove(String name) throws IOException {
+        if (byName.containsKey(name)) {
+            List<Preset> presets = loadAll();
+            presets.remove(indexOf(presets, name));
+            save(presets);
+            cache.remove(name);
+        }
+    }
+
+    public synchronized void exportTo(OutputStream out) throws IOException {
+        write(out, width, loadAll());
+    }
+
+    /** Merges a shared library into this one, presets with the same name are replaced. Returns the number of imported presets. */
+    public synchronized int importFrom(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            bytes.write(chunk, 0, n);
+        }
+        List<Preset> imported = read(ByteBuffer.wrap(bytes.toByteArray()));
+        putAll(imported);
+        return imported.size();
+    }
+
+    /** Adds or replaces several presets and saves the library once. */
+    public synchronized void putAll(List<Preset> added) throws IOException {
+        List<Preset> presets = loadAll();
+        for (Preset preset : added) {
+            int index = indexOf(presets, preset.name);
+            if (index >= 0) {
+                presets.set(index, preset);
+            } else {
+                presets.add(preset);
+            }
+        }
+        save(presets);
+        for (Preset preset : added) {
+            cache.remove(preset.name); // other cached scenes are still valid
+        }
+    }
+
+    // Reads every preset straight from the file, without touching the recall cache
+    private List<Preset> loadAll() {
+        List<Preset> presets = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            presets.add(new Preset(entry.name, new ArrayList<>(entry.tags), readValues(entry)));
+        }
+        return presets;
+    }
+
+    // Rewrites the whole file, which is fine for a few hundred presets of a few bytes each
+    private void save(List<Preset> presets) throws IOException {
+        if (readOnly) {
+            throw new IOException("Preset library " + file + " could not be read, not overwriting it");
+        }
+        // Write to a temporary file and swap it in, the old mapping keeps pointing to the old file
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean replaced = false;
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                write(out, width, presets); // also throws for names, tags or values that cannot be stored
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+            replaced = true;
+        } finally {
+            if (!replaced) {
+                tmp.delete(); // the old file is untouched, don't leave a half written copy next to it
+            }
+        }
+        entries.clear();
+        byName.clear();
+        readIndex(); // unlike open(), keeps the recall cache
+    }
+
+    private static boolean hasTag(Entry entry, String tag) {
+        for (String t : entry.tags) {
+            if (t.toLowerCase(Locale.ROOT).equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(List<Preset> presets, String name) {
+        for (int i = 0; i < presets.size(); i++) {
+            if (presets.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void write(OutputStream out, int width, List<Preset> presets) throws IOException {
+        if (width < 1 || width > 255) {
+            throw new IllegalArgumentException("'width' must be between 1 and 255.");
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        for (Preset preset : presets) {
+            for (int i = 0; i < width; i++) {
+                int value = i < preset.values.length ? preset.values[i] : 0;
+                if (value < 0 || value > 255) {
+                    throw new IllegalArgumentException("Preset values must be between 0 and 255.");
+                }
+                data.write(value);
+            }
+            writeString(index, preset.name);
+            if (preset.tags.size() > 255) {
+                throw new IllegalArgumentException("A preset can have at most 255 tags.");
+            }
+            index.write(preset.tags.size());
+            for (String tag : preset.tags) {
+                writeString(index, tag);
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put((byte) VERSION).put((byte) width).putShort((short) 0)
+                .putInt(presets.size()).putInt(HEADER_SIZE + data.size());
+        out.write(header.array());
+        data.writeTo(out);
+        index.writeTo(out);
+    }
+
+    /** Reads all presets of a library file, with values of the width stored in the file. */
+    public static List<Preset> read(ByteBuffer buffer) throws IOException {
+        int count = readHeader(buffer);
+        int width = buffer.get(5) & 0xFF;
+        List<Preset> presets = new ArrayList<>(); // count comes from the file, do not size anything by it
+        try {
+            for (int slot = 0; slot < count; slot++) {
+                String name = readString(buffer);
+                List<String> tags = readTags(buffer);
+                int[] values = new int[width];
+                for (int i = 0; i < width; i++) {
+                    values[i] = buffer.get(HEADER_SIZE + slot * width + i) & 0xFF;
+                }
+                presets.add(new Preset(name, tags, values));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt preset library", e);
+        }
+        return presets;
+    }
+
+    // Checks the header, moves the buffer to the start of the index and returns the preset count.
+    // Imported files are untrusted, so width and count have to fit the bytes that are actually there.
+    private static int readHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a preset library");
+        }
+        if (buffer.get(4) != VERSION) {
+            throw new IOException("Unsupported preset library version " + buffer.get(4));
+        }
+        int width = buffer.get(5) & 0xFF;
+        int count = buffer.getInt(8);
+        int indexOffset = buffer.getInt(12);
+        if (width == 0 || count < 0 || indexOffset != HEADER_SIZE + (long) count * width || indexOffset > buffer.limit()) {
+            throw new IOException("Corrupt preset library");
+        }
+        // every index entry needs at least a name length and a tag count byte
+        if ((long) count * 2 > buffer.limit() - indexOffset) {
+            throw new IOException("Corrupt preset library");
+        }
+        buffer.position(indexOffset);
+        return count;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 255) {
+            throw new IllegalArgumentException("Names and tags must be at most 255 bytes long.");
+        }
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.get() & 0xFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> readTags(ByteBuffer buffer) {
+        int tagCount = buffer.get() & 0xFF;
+        List<String> tags = new ArrayList<>(tagCount);
+        for (int i = 0; i < tagCount; i++) {
+            tags.add(readString(buffer));
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.cloudio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for what happens to channel updates on their way to the lamp.
+ */
+public class TransportMetrics {
+    public final AtomicLong requested = new AtomicLong(); // sendData calls
+    public final AtomicLong skipped = new AtomicLong();   // lamp already had the value
+    public final AtomicLong coalesced = new AtomicLong(); // replaced a pending write of the same channel
+    public final AtomicLong written = new AtomicLong();   // writes acknowledged by the lamp
+    public final AtomicLong failed = new AtomicLong();    // writes that could not be started or failed
+    public final AtomicLong reported = new AtomicLong();  // values reported back by the lamp
+
+    @Override
+    public String toString() {
+        return "requested=" + requested.get()
+                + " skipped=" + skipped.get()
+                + " coalesced=" + coalesced.get()
+                + " written=" + written.get()
+                + " failed=" + failed.get()
+                + " reported=" + reported.get();
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.cloudio;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides which channel values still have to be written to the lamp.
+ * Only one GATT operation can be in flight, pending writes are kept per channel so a newer
+ * value for a channel replaces the older one instead of queueing up behind it.
+ * Has no Android dependencies, {@link BluetoothHelper} does the actual GATT calls.
+ */
+public class WriteQueue {
+    private final ChannelState state = new ChannelState();
+    private final TransportMetrics metrics = new TransportMetrics();
+    private final LinkedHashMap<Integer, Integer> pending = new LinkedHashMap<>();
+    // Local values the lamp has not acknowledged or reported yet, also kept across disconnects
+    private final boolean[] unsent = new boolean[ChannelState.CHANNEL_COUNT];
+
+    private boolean connected = false;
+    private boolean busy = false; // a characteristic write is in flight
+    private boolean descriptorInFlight = false; // enabling notifications, no characteristic writes meanwhile
+    private int inFlightChannel = -1;
+    private int inFlightValue = -1;
+
+    public ChannelState getChannelState() {
+        return state;
+    }
+
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Connecting allows writes to be queued. Disconnecting drops everything queued and
+     * forgets what the lamp had, so the next connection resyncs.
+     */
+    public synchronized void setConnected(boolean connected) {
+        this.connected = connected;
+        if (!connected) {
+            pending.clear();
+            busy = false;
+            descriptorInFlight = false;
+            inFlightChannel = -1;
+            state.invalidateLamp();
+        }
+    }
+
+    /**
+     * Connects and reserves the link for the descriptor write that enables notifications in one step,
+     * so no characteristic write can slip in between.
+     */
+    public synchronized void connectWithDescriptorWrite() {
+        connected = true;
+        descriptorInFlight = true;
+    }
+
+    /**
+     * Reserves the link for a descriptor write. Returns false if a characteristic or descriptor write
+     * is in flight, the caller has to try again later.
+     */
+    public synchronized boolean beginDescriptorWrite() {
+        if (busy || descriptorInFlight || !connected) {
+            return false;
+        }
+        descriptorInFlight = true;
+        return true;
+    }
+
+    /** Called when the descriptor write finished or could not be started. */
+    public synchronized void endDescriptorWrite() {
+        descriptorInFlight = false;
+    }
+
+    public synchronized void enqueue(int channel, int value) {
+        checkRange(channel, value);
+        metrics.requested.incrementAndGet();
+        boolean differs = state.setDesired(channel, value);
+        // A write in flight may change the lamp value, so that channel is never known to match
+        if (!differs && channel != inFlightChannel) {
+            pending.remove(channel); // an older value for this channel must not be sent anymore
+            unsent[channel] = false;
+            metrics.skipped.incrementAndGet();
+            return; // lamp already has this value
+        }
+        unsent[channel] = true;
+        if (!connected) {
+            return; // will be sent by the resync once we are connected
+        }
+        // re-insert so the channel moves to the end of the queue
+        if (pending.remove(channel) != null) {
+            metrics.coalesced.incrementAndGet();
+        }
+        pending.put(channel, value);
+    }
+
+    /** Queues a run of consecutive channels as one batch. Nothing is queued if any value is out of range. */
+    public synchronized void enqueueScene(int firstChannel, int[] values) {
+        for (int i = 0; i < values.length; i++) {
+            checkRange(firstChannel + i, values[i]);
+        }
+        for (int i = 0; i < values.length; i++) {
+            enqueue(firstChannel + i, values[i]);
+        }
+    }
+
+    /** Queues every channel where the lamp is not known to have the desired value. */
+    public synchronized void enqueueMismatches() {
+        if (!connected) {
+            return;
+        }
+        for (int channel : state.getMismatches()) {
+            int value = state.getDesired(channel);
+            if (channel == inFlightChannel && value == inFlightValue) {
+                continue; // already on its way
+            }
+            pending.put(channel, value);
+        }
+    }
+
+    /**
+     * Takes the next write and marks it as in flight.
+     * Returns {channel, value}, or null if nothing can be written right now.
+     */
+    public synchronized int[] next() {
+        if (busy || descriptorInFlight || !connected) {
+            return null;
+        }
+        Iterator<Map.Entry<Integer, Integer>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Integer> entry = it.next();
+            it.remove();
+            int channel = entry.getKey();
+            int value = entry.getValue();
+            if (state.getLamp(channel) == value) {
+                metrics.skipped.incrementAndGet();
+                continue; // lamp reported or acknowledged this value in the meantime
+            }
+            busy = true;
+            inFlightChannel = channel;
+            inFlightValue = value;
+            return new int[]{channel, value};
+        }
+        return null;
+    }
+
+    /**
+     * Called when the write taken with {@link #next()} finished or could not be started.
+     * A failed value is queued again, unless a newer value for that channel is already waiting.
+     */
+    public synchronized void onWriteComplete(boolean success) {
+        if (inFlightChannel >= 0) {
+            if (success) {
+                state.onWritten(inFlightChannel, inFlightValue);
+                metrics.written.incrementAndGet();
+                if (state.getDesired(inFlightChannel) == inFlightValue && !pending.containsKey(inFlightChannel)) {
+                    unsent[inFlightChannel] = false;
+                }
+            } else {
+                metrics.failed.incrementAndGet();
+                if (connected && !pending.containsKey(inFlightChannel)) {
+                    pending.put(inFlightChannel, inFlightValue);
+                }
+            }
+        }
+        busy = false;
+        inFlightChannel = -1;
+    }
+
+    /**
+     * Stores a value reported by the lamp. If the channel has a local change that is pending,
+     * in flight or not sent yet, that change wins and only the lamp value is updated, so e.g. the
+     * echo of an older write cannot undo a newer slider move. Otherwise the desired value follows the lamp.
+     * Returns true if the desired value changed.
+     */
+    public synchronized boolean onReported(int channel, int value) {
+        metrics.reported.incrementAndGet();
+        if (unsent[channel] || pending.containsKey(channel) || channel == inFlightChannel) {
+            state.onWritten(channel, value);
+            if (state.getDesired(channel) == value && channel != inFlightChannel) {
+                pending.remove(channel);
+                unsent[channel] = false;
+            }
+            return false;
+        }
+        return state.onReported(channel, value);
+    }
+
+    // Checked before anything is stored, a bad value must never reach next() and buildMessage
+    private static void checkRange(int channel, int value) {
+        if (channel < 0 || channel > 255 || value < 0 || value > 255) {
+            throw new IllegalArgumentException("Both 'channel' and 'value' must be between 0 and 255.");
+        }
+    }
+
+    public synchronized boolean isPending(int channel) {
+        return pending.containsKey(channel);
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.cloudio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which channels differ between the desired and the lamp reported values.
+ */
+public class ChannelStateTest {
+    @Test
+    public void onlyMismatchesNeedResync() {
+        ChannelState state = new ChannelState();
+        assertTrue(state.setDesired(1, 50));
+        assertTrue(state.setDesired(2, 10));
+        state.onWritten(1, 50);
+        assertFalse(state.setDesired(1, 50));
+        assertEquals(Arrays.asList(2), state.getMismatches());
+
+        // lamp switched mode on its own, local state follows
+        assertTrue(state.onReported(2, 30));
+        assertEquals(30, state.getDesired(2));
+        assertTrue(state.getMismatches().isEmpty());
+
+        state.invalidateLamp();
+        assertEquals(Arrays.asList(1, 2), state.getMismatches());
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.cloudio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Load generator for the local control API, runs the server on localhost against a fake lamp.
+ * Skipped unless run with ./gradlew test -PloadTest.
+ * Throughput and latency are measured in separate phases: the latency samples are paced at a
+ * fixed rate, so they do not include time spent queued behind a flood of frames.
+ */
+public class ControlServerLoadTest {
+    private static final int FLOOD_FRAMES = 20000;
+    private static final int PAIRS_PER_FRAME = 10;
+    private static final int LATENCY_SAMPLES = 500;
+    private static final long LATENCY_INTERVAL_MS = 5;
+
+    @Before
+    public void onlyWhenRequested() {
+        assumeTrue(Boolean.getBoolean("cloudio.loadtest"));
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        ControlServer server = ControlServerTest.startServer(transport);
+        final CountDownLatch pong = new CountDownLatch(1);
+        ControlServerTest.SilentClient client = new ControlServerTest.SilentClient(uri(server)) {
+            @Override
+            public void onMessage(ByteBuffer bytes) {
+                pong.countDown();
+            }
+        };
+        assertTrue(client.connectBlocking(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        for (int frame = 1; frame <= FLOOD_FRAMES; frame++) {
+            client.send(frame(frame));
+        }
+        // the pong comes back once every frame before it was applied
+        client.send(new byte[]{ControlProtocol.OP_PING});
+        assertTrue(pong.await(60, TimeUnit.SECONDS));
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        client.closeBlocking();
+        server.stop(1000);
+
+        long total = (long) FLOOD_FRAMES * PAIRS_PER_FRAME;
+        assertEquals(total, server.getUpdateCount());
+        System.out.printf("ControlServer throughput: %d updates in %.2f s = %.0f updates/s%n",
+                total, seconds, total / seconds);
+    }
+
+    @Test
+    public void latency() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        ControlServer server = ControlServerTest.startServer(transport);
+        final BlockingQueue<Long> pongs = new LinkedBlockingQueue<>();
+        ControlServerTest.SilentClient client = new ControlServerTest.SilentClient(uri(server)) {
+            @Override
+            public void onMessage(ByteBuffer bytes) {
+                pongs.add(System.nanoTime());
+            }
+        };
+        client.setTcpNoDelay(true);
+        assertTrue(client.connectBlocking(5, TimeUnit.SECONDS));
+
+        // one frame at a time at a fixed rate, each followed by a ping that is answered once it was applied
+        double[] samples = new double[LATENCY_SAMPLES];
+        long next = System.nanoTime();
+        for (int i = 0; i < LATENCY_SAMPLES; i++) {
+            long sent = System.nanoTime();
+            client.send(frame(i));
+            client.send(new byte[]{ControlProtocol.OP_PING});
+            Long received = pongs.poll(5, TimeUnit.SECONDS);
+            assertNotNull(received);
+            samples[i] = (received - sent) / 1e6;
+
+            next += TimeUnit.MILLISECONDS.toNanos(LATENCY_INTERVAL_MS);
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        client.closeBlocking();
+        server.stop(1000);
+
+        assertEquals((long) LATENCY_SAMPLES * PAIRS_PER_FRAME, server.getUpdateCount());
+        Arrays.sort(samples);
+        System.out.printf("ControlServer latency at one frame every %d ms: p50 %.2f ms, p99 %.2f ms%n",
+                LATENCY_INTERVAL_MS, percentile(samples, 0.50), percentile(samples, 0.99));
+    }
+
+    private static URI uri(ControlServer server) {
+        return URI.create("ws://127.0.0.1:" + server.getPort() + "/?token=" + ControlServerTest.TOKEN);
+    }
+
+    private static byte[] frame(int frame) {
+        int[] channels = new int[PAIRS_PER_FRAME];
+        int[] values = new int[PAIRS_PER_FRAME];
+        for (int i = 0; i < PAIRS_PER_FRAME; i++) {
+            channels[i] = i + 1;
+            values[i] = (frame + i) % 256;
+        }
+        return ControlProtocol.buildSet(channels, values);
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.cloudio;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.junit.Test;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the local control API on localhost against a fake lamp.
+ * Throughput and latency are measured by the opt-in {@link ControlServerLoadTest}.
+ */
+public class ControlServerTest {
+    static final String TOKEN = "secret";
+    private static final int FRAMES = 2000;
+    private static final int PAIRS_PER_FRAME = 10;
+
+    @Test
+    public void applySetAndScene() {
+        FakeTransport transport = new FakeTransport();
+        byte[] set = ControlProtocol.buildSet(new int[]{1, 7}, new int[]{50, 250});
+        assertEquals(2, ControlProtocol.apply(ByteBuffer.wrap(set), transport));
+        byte[] scene = ControlProtocol.buildScene(2, new int[]{10, 20, 30});
+        assertEquals(3, ControlProtocol.apply(ByteBuffer.wrap(scene), transport));
+        assertEquals(50, transport.state.getDesired(1));
+        assertEquals(20, transport.state.getDesired(3));
+        assertEquals(250, transport.state.getDesired(7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddSetFrame() {
+        ControlProtocol.apply(ByteBuffer.wrap(new byte[]{ControlProtocol.OP_SET, 1}), new FakeTransport());
+    }
+
+    static ControlServer startServer(ChannelTransport transport) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        ControlServer server = new ControlServer(0, transport, TOKEN) {
+            @Override
+            public void onStart() {
+                started.countDown();
+            }
+        };
+        server.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return server;
+    }
+
+    static class SilentClient extends WebSocketClient {
+        SilentClient(URI uri) {
+            super(uri);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(Exception ex) {
+        }
+    }
+
+    @Test
+    public void reportsWhenPortIsTaken() throws Exception {
+        ControlServer first = startServer(new FakeTransport());
+        ControlServer second = new ControlServer(first.getPort(), new FakeTransport(), TOKEN);
+        final CountDownLatch failed = new CountDownLatch(1);
+        second.setOnServerFailedListener(new ControlServer.OnServerFailedListener() {
+            @Override
+            public void onServerFailed(Exception ex) {
+                failed.countDown();
+            }
+        });
+        second.start();
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        first.stop(1000);
+    }
+
+    @Test
+    public void jsonSetIsAllOrNothing() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        ControlServer server = startServer(transport);
+        final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+        SilentClient client = new SilentClient(new URI("ws://127.0.0.1:" + server.getPort() + "/?token=" + TOKEN)) {
+            @Override
+            public void onMessage(String message) {
+                replies.add(message);
+            }
+        };
+        assertTrue(client.connectBlocking(5, TimeUnit.SECONDS));
+
+        client.send("{\"set\": {\"1\": 10, \"2\": 300}}");
+        String reply = replies.poll(5, TimeUnit.SECONDS);
+        assertNotNull(reply);
+        assertTrue(reply.contains("error"));
+        assertEquals(ChannelState.UNKNOWN, transport.state.getDesired(1));
+
+        client.send("{\"set\": {\"1\": 10, \"2\": 30}, \"get\": \"state\"}");
+        reply = replies.poll(5, TimeUnit.SECONDS);
+        assertNotNull(reply);
+        assertEquals(10, transport.state.getDesired(1));
+        assertEquals(30, transport.state.getDesired(2));
+
+        client.closeBlocking();
+        server.stop(1000);
+    }
+
+    @Test
+    public void requiresToken() throws Exception {
+        ControlServer server = startServer(new FakeTransport());
+        String base = "ws://127.0.0.1:" + server.getPort();
+
+        assertFalse(new SilentClient(new URI(base)).connectBlocking(5, TimeUnit.SECONDS));
+        assertFalse(new SilentClient(new URI(base + "/?token=wrong")).connectBlocking(5, TimeUnit.SECONDS));
+
+        SilentClient header = new SilentClient(new URI(base));
+        header.addHeader("Authorization", "Bearer " + TOKEN);
+        assertTrue(header.connectBlocking(5, TimeUnit.SECONDS));
+        header.closeBlocking();
+        server.stop();
+    }
+
+    @Test
+    public void deliversEveryUpdate() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        ControlServer server = startServer(transport);
+        final AtomicLong remoteUpdates = new AtomicLong();
+        server.setOnRemoteUpdateListener(new ControlServer.OnRemoteUpdateListener() {
+            @Override
+            public void onRemoteUpdate() {
+                remoteUpdates.incrementAndGet();
+            }
+        });
+
+        final CountDownLatch pong = new CountDownLatch(1);
+        final AtomicLong errors = new AtomicLong();
+        SilentClient client = new SilentClient(new URI("ws://127.0.0.1:" + server.getPort() + "/?token=" + TOKEN)) {
+            @Override
+            public void onMessage(String message) {
+                errors.incrementAndGet();
+            }
+
+            @Override
+            public void onMessage(ByteBuffer bytes) {
+                pong.countDown();
+            }
+        };
+        assertTrue(client.connectBlocking(5, TimeUnit.SECONDS));
+
+        int[] channels = new int[PAIRS_PER_FRAME];
+        int[] values = new int[PAIRS_PER_FRAME];
+        for (int frame = 1; frame <= FRAMES; frame++) {
+            for (int i = 0; i < PAIRS_PER_FRAME; i++) {
+                channels[i] = i + 1;
+                values[i] = (frame + i) % 256;
+            }
+            client.send(ControlProtocol.buildSet(channels, values));
+        }
+        // the pong comes back once everything before it was applied
+        client.send(new byte[]{ControlProtocol.OP_PING});
+        assertTrue(pong.await(30, TimeUnit.SECONDS));
+
+        client.closeBlocking();
+        server.stop(1000);
+
+        long total = (long) FRAMES * PAIRS_PER_FRAME;
+        assertEquals(0, errors.get());
+        assertEquals(total, server.getUpdateCount());
+        assertEquals(total, transport.metrics.requested.get());
+        assertEquals(FRAMES, remoteUpdates.get());
+        assertEquals((FRAMES + 9) % 256, transport.state.getDesired(10));
+    }
+}
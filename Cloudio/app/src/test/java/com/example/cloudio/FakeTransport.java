@@ -0,0 +1,37 @@
+package com.example.cloudio;
+
+/**
+ * Lamp stand-in for tests, every write is acknowledged immediately.
+ */
+class FakeTransport implements ChannelTransport {
+    final ChannelState state = new ChannelState();
+    final TransportMetrics metrics = new TransportMetrics();
+
+    @Override
+    public void sendData(int channel, int value) {
+        metrics.requested.incrementAndGet();
+        if (state.setDesired(channel, value)) {
+            state.onWritten(channel, value);
+            metrics.written.incrementAndGet();
+        } else {
+            metrics.skipped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void applyScene(int firstChannel, int[] values) {
+        for (int i = 0; i < values.length; i++) {
+            sendData(firstChannel + i, values[i]);
+        }
+    }
+
+    @Override
+    public ChannelState getChannelState() {
+        return state;
+    }
+
+    @Override
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.cloudio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks decoding of lamp reported packets.
+ */
+public class PacketDecoderTest {
+    private final List<int[]> packets = new ArrayList<>();
+    private final PacketDecoder decoder = new PacketDecoder(new PacketDecoder.PacketListener() {
+        @Override
+        public void onPacket(int channel, int value) {
+            packets.add(new int[]{channel, value});
+        }
+    });
+
+    @Test
+    public void decodesSplitPackets() {
+        decoder.feed(new byte[]{(byte) 255, 1, 0});
+        decoder.feed(new byte[]{127, 13, (byte) 255, 127, 10, 50, 0});
+        assertEquals(2, packets.size());
+        assertArrayEquals(new int[]{1, 140}, packets.get(0));
+        assertArrayEquals(new int[]{137, 50}, packets.get(1));
+    }
+
+    @Test
+    public void dropsIncompletePacket() {
+        decoder.feed(new byte[]{3, 4, (byte) 255, 2, 0, (byte) 255, 2, 0, 20, 0});
+        assertEquals(1, packets.size());
+        assertArrayEquals(new int[]{2, 20}, packets.get(0));
+    }
+}
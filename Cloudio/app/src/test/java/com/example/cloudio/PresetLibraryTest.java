@@ -0,0 +1,178 @@
+package com.example.cloudio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the binary preset library: storage, search, recall and import/export.
+ */
+public class PresetLibraryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PresetLibrary open(File file) throws IOException {
+        PresetLibrary library = new PresetLibrary(file, 10, 4);
+        library.open();
+        return library;
+    }
+
+    @Test
+    public void storesAndRecallsPresets() throws IOException {
+        File file = new File(folder.getRoot(), "presets.bin");
+        PresetLibrary library = open(file);
+        assertEquals(0, library.size());
+
+        library.putAll(Arrays.asList(
+                new Preset("Off", null, new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0}),
+                new Preset("Thunderstorm", Arrays.asList("storm", "flash"), new int[]{0, 50, 50, 255, 150, 255, 255, 0, 0, 0})));
+        // fixed width vectors plus a small name index
+        assertTrue(file.length() < 16 + 2 * 10 + 40);
+
+        PresetLibrary reopened = open(file);
+        assertEquals(Arrays.asList("Off", "Thunderstorm"), reopened.getNames());
+        assertArrayEquals(new int[]{0, 50, 50, 255, 150, 255, 255, 0, 0, 0}, reopened.recall("Thunderstorm"));
+        assertNull(reopened.recall("Party"));
+
+        reopened.put(new Preset("Off", Arrays.asList("dark"), new int[]{1}));
+        assertEquals(2, reopened.size());
+        assertArrayEquals(new int[]{1, 0, 0, 0, 0, 0, 0, 0, 0, 0}, reopened.recall("Off"));
+        reopened.remove("Off");
+        assertEquals(Arrays.asList("Thunderstorm"), reopened.getNames());
+    }
+
+    @Test
+    public void saveKeepsRecentlyUsedScenesCached() throws IOException {
+        File file = new File(folder.getRoot(), "presets.bin");
+        PresetLibrary library = open(file);
+        library.putAll(Arrays.asList(
+                new Preset("A", null, new int[]{1}),
+                new Preset("B", null, new int[]{2})));
+        assertEquals(1, library.recall("A")[0]);
+        assertEquals(2, library.recall("B")[0]);
+        assertEquals(2, library.getCachedCount());
+
+        library.put(new Preset("B", null, new int[]{3}));
+        library.put(new Preset("C", null, new int[]{4}));
+        assertEquals(1, library.getCachedCount()); // only the replaced scene was dropped
+        assertEquals(3, library.recall("B")[0]);
+        assertEquals(1, library.recall("A")[0]);
+    }
+
+    @Test
+    public void searchesByNameAndTag() throws IOException {
+        PresetLibrary library = open(new File(folder.getRoot(), "presets.bin"));
+        library.putAll(Arrays.asList(
+                new Preset("Stage Left", Arrays.asList("warm"), new int[]{1}),
+                new Preset("Stage Right", Arrays.asList("cold"), new int[]{2}),
+                new Preset("Bar", Arrays.asList("Warm"), new int[]{3})));
+        assertEquals(Arrays.asList("Stage Left", "Stage Right"), library.search("stage"));
+        assertEquals(Arrays.asList("Stage Left", "Bar"), library.search("warm"));
+        assertEquals(3, library.search("").size());
+    }
+
+    @Test
+    public void manyPresetsRoundTripThroughExport() throws IOException {
+        PresetLibrary library = open(new File(folder.getRoot(), "a.bin"));
+        List<Preset> presets = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            presets.add(new Preset("Look " + i, Arrays.asList("venue"), new int[]{i % 256, 255, 0}));
+        }
+        library.putAll(presets);
+        for (int i = 0; i < 500; i += 7) {
+            assertEquals(i % 256, library.recall("Look " + i)[0]);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        library.exportTo(out);
+        PresetLibrary other = open(new File(folder.getRoot(), "b.bin"));
+        other.put(new Preset("Look 3", null, new int[]{9}));
+        other.put(new Preset("Local", null, new int[]{7}));
+        assertEquals(500, other.importFrom(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(501, other.size());
+        assertEquals(3, other.recall("Look 3")[0]);
+        assertEquals(255, other.recall("Look 499")[1]);
+    }
+
+    @Test
+    public void rejectsHeadersThatDoNotFitTheFile() {
+        // zero width with a huge count used to pass the offset check and exhaust memory
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.putInt(0x434C504C).put((byte) 1).put((byte) 0).putShort((short) 0)
+                .putInt(Integer.MAX_VALUE).putInt(16);
+        assertCorrupt(header.array());
+
+        // count claims more presets than there are bytes
+        header = ByteBuffer.allocate(16 + 1000);
+        header.putInt(0x434C504C).put((byte) 1).put((byte) 1).putShort((short) 0)
+                .putInt(1000).putInt(16 + 1000);
+        assertCorrupt(header.array());
+    }
+
+    private void assertCorrupt(byte[] bytes) {
+        try {
+            PresetLibrary.read(ByteBuffer.wrap(bytes));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void corruptFileIsMovedAsideBeforeSaving() throws IOException {
+        File file = new File(folder.getRoot(), "presets.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not a preset library".getBytes());
+        }
+        PresetLibrary library = new PresetLibrary(file, 10, 4);
+        try {
+            library.open();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        File corrupt = new File(folder.getRoot(), "presets.bin.corrupt");
+        assertEquals("not a preset library".length(), corrupt.length());
+
+        library.put(new Preset("New", null, new int[]{1}));
+        assertEquals("not a preset library".length(), corrupt.length());
+        assertEquals(Arrays.asList("New"), open(file).getNames());
+    }
+
+    @Test
+    public void failedSaveLeavesNoTemporaryFile() throws IOException {
+        File file = new File(folder.getRoot(), "presets.bin");
+        PresetLibrary library = open(file);
+        library.put(new Preset("Off", null, new int[]{0}));
+        char[] longName = new char[256];
+        Arrays.fill(longName, 'x');
+        try {
+            library.put(new Preset(new String(longName), null, new int[]{1}));
+            fail("Expected the name to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertFalse(new File(folder.getRoot(), "presets.bin.tmp").exists());
+        assertEquals(Arrays.asList("Off"), open(file).getNames());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignFiles() throws IOException {
+        File file = new File(folder.getRoot(), "presets.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not a preset library".getBytes());
+        }
+        open(file);
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.cloudio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which values the write queue sends to the lamp.
+ */
+public class WriteQueueTest {
+    private WriteQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new WriteQueue();
+        queue.setConnected(true);
+    }
+
+    // Writes the next queued value and reports it as acknowledged
+    private int[] writeNext() {
+        int[] write = queue.next();
+        assertNotNull(write);
+        queue.onWriteComplete(true);
+        return write;
+    }
+
+    @Test
+    public void skipsValuesTheLampAlreadyHas() {
+        queue.enqueue(1, 50);
+        writeNext();
+        queue.enqueue(1, 50);
+        assertNull(queue.next());
+    }
+
+    @Test
+    public void revertWhileQueuedDropsStaleValue() {
+        queue.enqueue(1, 50);
+        writeNext();
+
+        queue.enqueue(2, 10); // keeps the link busy
+        int[] inFlight = queue.next();
+        queue.enqueue(1, 60);
+        queue.enqueue(1, 50); // back to what the lamp has
+        assertFalse(queue.isPending(1));
+
+        assertArrayEquals(new int[]{2, 10}, inFlight);
+        queue.onWriteComplete(true);
+        assertNull(queue.next());
+        assertEquals(50, queue.getChannelState().getLamp(1));
+    }
+
+    @Test
+    public void revertWhileInFlightSendsValueAgain() {
+        queue.enqueue(1, 50);
+        writeNext();
+
+        queue.enqueue(1, 60);
+        assertArrayEquals(new int[]{1, 60}, queue.next());
+        queue.enqueue(1, 50); // lamp value is still 50, but 60 is on its way
+        queue.onWriteComplete(true);
+        assertEquals(60, queue.getChannelState().getLamp(1));
+
+        assertArrayEquals(new int[]{1, 50}, writeNext());
+        assertEquals(50, queue.getChannelState().getLamp(1));
+        assertNull(queue.next());
+    }
+
+    @Test
+    public void failedWriteIsQueuedAgain() {
+        queue.enqueue(1, 50);
+        assertArrayEquals(new int[]{1, 50}, queue.next());
+        queue.onWriteComplete(false);
+        assertArrayEquals(new int[]{1, 50}, writeNext());
+        assertEquals(1, queue.getMetrics().failed.get());
+    }
+
+    @Test
+    public void failedWriteDoesNotOverrideNewerValue() {
+        queue.enqueue(1, 50);
+        queue.next();
+        queue.enqueue(1, 70);
+        queue.onWriteComplete(false);
+        assertArrayEquals(new int[]{1, 70}, writeNext());
+        assertNull(queue.next());
+    }
+
+    @Test
+    public void descriptorWriteHoldsBackCharacteristicWrites() {
+        queue.setConnected(false);
+        queue.connectWithDescriptorWrite();
+        queue.enqueue(1, 10);
+        assertNull(queue.next()); // nothing between connecting and enabling notifications
+        queue.endDescriptorWrite();
+        assertArrayEquals(new int[]{1, 10}, queue.next());
+
+        // a descriptor write has to wait for the characteristic write in flight
+        assertFalse(queue.beginDescriptorWrite());
+        queue.onWriteComplete(true);
+        assertTrue(queue.beginDescriptorWrite());
+        queue.enqueue(1, 20);
+        assertNull(queue.next());
+        queue.endDescriptorWrite();
+        assertArrayEquals(new int[]{1, 20}, writeNext());
+    }
+
+    @Test
+    public void rejectsOutOfRangeValuesBeforeQueueing() {
+        try {
+            queue.enqueue(1, 256);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            queue.enqueueScene(254, new int[]{1, 2, 3});
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertNull(queue.next());
+        assertEquals(ChannelState.UNKNOWN, queue.getChannelState().getDesired(1));
+        assertEquals(ChannelState.UNKNOWN, queue.getChannelState().getDesired(254));
+    }
+
+    @Test
+    public void coalescesPerChannel() {
+        assertTrue(queue.beginDescriptorWrite());
+        queue.enqueue(1, 10);
+        queue.enqueue(1, 20);
+        queue.enqueue(1, 30);
+        queue.endDescriptorWrite();
+        assertArrayEquals(new int[]{1, 30}, writeNext());
+        assertNull(queue.next());
+        assertEquals(2, queue.getMetrics().coalesced.get());
+    }
+
+    @Test
+    public void resyncAfterReconnectSendsOnlyMismatches() {
+        queue.enqueue(1, 50);
+        queue.enqueue(2, 10);
+        writeNext();
+        writeNext();
+
+        queue.setConnected(false);
+        queue.setConnected(true);
+        queue.onReported(1, 50);
+        queue.enqueueMismatches();
+        assertArrayEquals(new int[]{2, 10}, writeNext());
+        assertNull(queue.next());
+    }
+
+    @Test
+    public void echoOfOlderValueDoesNotUndoPendingWrite() {
+        queue.enqueue(1, 55);
+        writeNext();
+
+        queue.enqueue(1, 56);
+        assertArrayEquals(new int[]{1, 56}, queue.next());
+        queue.enqueue(1, 57); // queued behind the write of 56
+
+        assertFalse(queue.onReported(1, 55)); // lamp echoes the first write
+        assertEquals(57, queue.getChannelState().getDesired(1));
+        assertTrue(queue.isPending(1));
+
+        assertFalse(queue.onReported(1, 56)); // echo of the write in flight
+        queue.onWriteComplete(true);
+        assertArrayEquals(new int[]{1, 57}, writeNext());
+        assertEquals(57, queue.getChannelState().getLamp(1));
+        assertFalse(queue.onReported(1, 57));
+        assertEquals(57, queue.getChannelState().getDesired(1));
+    }
+
+    @Test
+    public void editsWhileDisconnectedWinOverReports() {
+        queue.setConnected(false);
+        queue.enqueue(2, 80);
+        queue.setConnected(true);
+
+        assertFalse(queue.onReported(2, 20)); // lamp still has its old value
+        assertEquals(80, queue.getChannelState().getDesired(2));
+        queue.enqueueMismatches();
+        assertArrayEquals(new int[]{2, 80}, writeNext());
+    }
+
+    @Test
+    public void reportMovesUntouchedChannel() {
+        assertTrue(queue.onReported(4, 90));
+        assertEquals(90, queue.getChannelState().getDesired(4));
+    }
+
+    @Test
+    public void reportDropsPendingWriteOfSameValue() {
+        assertTrue(queue.beginDescriptorWrite());
+        queue.enqueue(3, 40);
+        queue.onReported(3, 40);
+        queue.endDescriptorWrite();
+        assertNull(queue.next());
+    }
+}